@@ -14,7 +14,10 @@ import gameobject.worldobject.Grass;
 import gameobject.worldobject.Tree;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -35,7 +38,10 @@ public class InternetOfThings implements Savable{
     private Node internetWorld;
     //private ConcurrentHashMap<Long, Thing> things;
     private HTreeMap<Long, Thing> things;
+    private HTreeMap<long[], ArrayList<Thing>> storedChunks;
+    private ThingChunks thingChunks;
     private DB db;
+    private DB chunkDb;
     private ScheduledThreadPoolExecutor executor;
     private LinkedBlockingQueue<Command> commandQueue;
     private LinkedBlockingQueue<Command> updateQueue;
@@ -44,14 +50,22 @@ public class InternetOfThings implements Savable{
     private final int POOL_SIZE = 4;
     private State state;
     private transient AssetManager assetManager;
+    private transient ThingTemplates thingTemplates;
     
     private static final int THREAD_SLEEP_TIME = 1;
+    private static final float CHUNK_SIZE = 64f;
     
     /**
      * Debug variables
      */
     private int treeThreshold = 40;
     private float minimumSpawnHeight = -30f;
+    /**
+     * Chunks closer than radius + prefetch distance are loaded before viewer
+     * reaches them. Chunks are unloaded only after 1 more chunk size to
+     * avoid loading and unloading same chunk on its border
+     */
+    private float chunkPrefetchDistance = 64f;
     
     public enum State{
         RUNNING, STOPPED, SUSPENDED, NOT_INITIALIZED
@@ -105,7 +119,23 @@ public class InternetOfThings implements Savable{
          * InternetResult returns:
          * nothing
          */
-        GENERATE_ENVIROMENT
+        GENERATE_ENVIROMENT,
+        /**
+         * Load chunks near viewers and unload chunks far from every viewer.
+         * Loaded things are attached to the internet world, unloaded are
+         * compressed and stored on disk. Things which moved are moved to
+         * their current chunks first. Until first paging every thing is kept
+         * in memory. Executed by update loop, so it is the only thread
+         * changing internet world
+         * 1) Collection of Vector3f - locations of all viewers
+         * 2) Float - radius of loaded area around each viewer
+         * 
+         * InternetResult returns:
+         * 1) Integer - count of loaded things
+         * 2) Integer - count of unloaded things
+         * 3) Integer - count of things moved to another chunk
+         */
+        PAGE_CHUNKS
     }
     
     public InternetOfThings(){
@@ -127,11 +157,15 @@ public class InternetOfThings implements Savable{
         executor.submit(InternetHandlerLoop);
         executor.submit(GeneratorLoop);
         //things = new ConcurrentHashMap<>();
+        thingTemplates = new ThingTemplates();
         internetWorld = new Node("internet world");
         //
         db = DBMaker.heapDB().transactionEnable().make();
     
         things = db.hashMap("map", org.mapdb.Serializer.LONG, org.mapdb.Serializer.JAVA).createOrOpen();
+        chunkDb = DBMaker.tempFileDB().fileMmapEnableIfSupported().make();
+        storedChunks = chunkDb.hashMap("chunks", org.mapdb.Serializer.LONG_ARRAY, org.mapdb.Serializer.JAVA).createOrOpen();
+        thingChunks = new ThingChunks(CHUNK_SIZE, things, storedChunks, internetWorld, thingTemplates);
         state = State.RUNNING;
     }
     
@@ -141,8 +175,10 @@ public class InternetOfThings implements Savable{
     public void shutdown(){
         state = State.STOPPED;
         executor.shutdown();
+        thingTemplates.clear();
         
         db.close();
+        chunkDb.close();
     }
 
     @Override
@@ -217,6 +253,7 @@ public class InternetOfThings implements Savable{
                     case DELETE_THINGS: updateQueue.put(command); break;
                     case GET_LIST_TO_RENDER: handlerQueue.put(command); break;
                     case GENERATE_ENVIROMENT: generatorQueue.put(command); break;
+                    case PAGE_CHUNKS: updateQueue.put(command); break;
                     default: 
                         throw new UnsupportedOperationException
                         ("[Internet of things] command " +
@@ -265,6 +302,7 @@ public class InternetOfThings implements Savable{
         private void executeCommand(Command command){
             switch (command.commandType){
                 case ADD_THING: addThing(command); break;
+                case PAGE_CHUNKS: pageChunks(command); break;
             }
             
         }
@@ -276,11 +314,7 @@ public class InternetOfThings implements Savable{
                 Spatial operatedSpatial = null;
                 if (operatedObject instanceof Thing){
                     operatedThing = (Thing) operatedObject;
-                    if (operatedThing.isCompressed()){
-                        operatedThing.recreate();
-                    }
-                    things.put(operatedThing.getID(), operatedThing);
-                    internetWorld.attachChild(operatedThing.getSpatial());
+                    thingChunks.add(operatedThing);
                 } else {
                     operatedSpatial = (Spatial) operatedObject;
                     internetWorld.attachChild(operatedSpatial);
@@ -296,6 +330,74 @@ public class InternetOfThings implements Savable{
             }
         }
         
+        /**
+         * Unload chunks far from every viewer, then load stored chunks in
+         * prefetch ring, nearest first
+         * @param command 
+         */
+        private void pageChunks(Command command){
+            try{
+                Collection<Vector3f> viewers = (Collection<Vector3f>) command.getArguments()[0];
+                float radius = (Float) command.getArguments()[1];
+                float loadDistance = radius + chunkPrefetchDistance;
+                float unloadDistance = loadDistance + thingChunks.getChunkSize();
+                int unloaded = 0;
+                int loaded = 0;
+                thingChunks.setViewers(viewers, loadDistance);
+                int moved = thingChunks.rebucket();
+
+                for (Long chunk : thingChunks.getLoadedChunks()){
+                    if (nearestViewerDistance(viewers, chunk) > unloadDistance){
+                        unloaded += thingChunks.unload(chunk);
+                    }
+                }
+
+                HashMap<Long, Float> chunksToLoad = new HashMap<>();
+                int ring = (int) Math.ceil(loadDistance / thingChunks.getChunkSize());
+                for (Vector3f viewer : viewers){
+                    long center = thingChunks.chunkOf(viewer);
+                    int centerX = ThingChunks.chunkX(center);
+                    int centerZ = ThingChunks.chunkZ(center);
+                    for (int x = centerX - ring; x <= centerX + ring; x++){
+                        for (int z = centerZ - ring; z <= centerZ + ring; z++){
+                            long chunk = ThingChunks.key(x, z);
+                            if (!thingChunks.isStored(chunk)){
+                                continue;
+                            }
+                            float distance = thingChunks.distanceToChunk(viewer, chunk);
+                            Float nearest = chunksToLoad.get(chunk);
+                            if (distance <= loadDistance 
+                                    && (nearest == null || distance < nearest)){
+                                chunksToLoad.put(chunk, distance);
+                            }
+                        }
+                    }
+                }
+                ArrayList<Map.Entry<Long, Float>> orderedChunks = 
+                        new ArrayList<>(chunksToLoad.entrySet());
+                orderedChunks.sort(Map.Entry.comparingByValue());
+
+                for (Map.Entry<Long, Float> chunk : orderedChunks){
+                    loaded += thingChunks.load(chunk.getKey());
+                }
+                thingChunks.flushPending();
+
+                command.getInternetResult().finish(InternetResult.ResultStatus.COMPLETED, 
+                        "", new Object[]{loaded, unloaded, moved});
+            } catch (Exception ex){
+                System.err.println("[IOT] Paging chunks exception: " + ex);
+                ex.printStackTrace();
+            }
+        }
+        
+        private float nearestViewerDistance(Collection<Vector3f> viewers, long chunk){
+            float nearest = Float.MAX_VALUE;
+            for (Vector3f viewer : viewers){
+                nearest = Math.min(nearest, thingChunks.distanceToChunk(viewer, chunk));
+            }
+            return nearest;
+        }
+        
     };
     
     
@@ -315,6 +417,11 @@ public class InternetOfThings implements Savable{
         private HashSet<SpriteInfo> spriteInfoToAttach = new HashSet<>();
         private HashSet<SpriteInfo> spriteInfoToDetach = new HashSet<>(); 
         private HashSet<SpriteInfo> spriteInfoToDetachAdditional = new HashSet<>();
+        private ArrayList<Thing> chunkThings = new ArrayList<>();
+        // Instances of visible shared things, dropped when thing is not visible
+        private HashMap<Long, Spatial> sharedSpatials = new HashMap<>();
+        private HashMap<Long, Integer> sharedRenderStates = new HashMap<>();
+        private HashSet<Long> visibleShared = new HashSet<>();
         
         @Override
         public Void call(){
@@ -376,43 +483,22 @@ public class InternetOfThings implements Savable{
             spatialsToDetach.clear();
             spriteInfoToAttach.clear();
             spriteInfoToDetach.clear();
-            for (Thing thing : things.getValues()){
-                //thing.initialize(thing.getID(), thing.getClassID(), thing.getType(), assetManager);
-                //thing.setLocation(thing.getLocation());
-                if (thing.getLocation().distance(cameraLocation) < renderDistance){
-                    if (thing.getRenderState() == thing.getState() 
-                            && thing.getRenderedSpatial() != null ){
-                        spatialsToRender.add(thing.getRenderedSpatial());
-                    } else if (thing.getRenderedSpatial() == null){
-                        thing.render();
-                        spatialsToRender.add(thing.getRenderedSpatial());
-                    } else if (thing.getRenderState() != thing.getState()){
-                        thing.render();
-                        spatialsToRender.add(thing.getRenderedSpatial());
-                    }
-                } else{
-                    if (thing.getRenderedSpatial() != null){
-                        
-                    }
-                    
-                    if (thing instanceof InternetSprite){ //thing instanceof InternetSprite
-                        if (((InternetSprite) thing).isSupportSprite()){
-                            SpriteInfo spriteInfo = ((InternetSprite) thing).spriteInfo();
-                            spriteInfoToRender.add(spriteInfo);
-                            if (spriteInfo.getRenderState() == thing.getRenderState() 
-                                    && spriteInfo.getConnectedSprite() != null ){
-                                
-                            } else if (spriteInfo.getConnectedSprite() == null){
-                                spriteInfoToAttach.add(spriteInfo);
-                            } else if (thing.getRenderState() != spriteInfo.getRenderState()){
-                                spriteInfoToDetach.add(spriteInfo);
-                                spriteInfoToAttach.add(spriteInfo);
-                                spriteInfo.setRenderState(thing.getRenderState());
-                            }
-                        }
+            visibleShared.clear();
+            for (Long chunk : thingChunks.getLoadedChunks()){
+                // Things are compressed and recreated by chunk paging only
+                // inside this lock, so it is held while 1 chunk is rendered
+                synchronized (thingChunks){
+                    chunkThings.clear();
+                    thingChunks.getThings(chunk, chunkThings);
+                    for (Thing thing : chunkThings){
+                        collectThing(thing, cameraLocation, renderDistance);
                     }
                 }
             }
+            chunkThings.clear();
+            sharedSpatials.keySet().retainAll(visibleShared);
+            sharedRenderStates.keySet().retainAll(visibleShared);
+            
                 spatialsToDetach.addAll(spatials);
                 spatialsToDetach.removeAll(spatialsToRender);
                 spatialsToRender.removeAll(spatials);
@@ -430,6 +516,78 @@ public class InternetOfThings implements Savable{
                 
                 
         }
+        
+        /**
+         * Add thing to lists to render if it is near camera, or its sprite
+         * if it is far
+         */
+        private void collectThing(Thing thing, Vector3f cameraLocation, float renderDistance){
+            boolean shared = thingTemplates.isShared(thing.getClassID());
+            if (!shared && thing.isCompressed()){
+                return;
+            }
+            //thing.initialize(thing.getID(), thing.getClassID(), thing.getType(), assetManager);
+            //thing.setLocation(thing.getLocation());
+            if (thing.getLocation().distance(cameraLocation) < renderDistance){
+                if (shared){
+                    Spatial instance = sharedInstance(thing);
+                    if (instance != null){
+                        spatialsToRender.add(instance);
+                    }
+                } else if (thing.getRenderState() == thing.getState() 
+                        && thing.getRenderedSpatial() != null ){
+                    spatialsToRender.add(thing.getRenderedSpatial());
+                } else if (thing.getRenderedSpatial() == null){
+                    thing.render();
+                    spatialsToRender.add(thing.getRenderedSpatial());
+                } else if (thing.getRenderState() != thing.getState()){
+                    thing.render();
+                    spatialsToRender.add(thing.getRenderedSpatial());
+                }
+            } else{
+                if (thing.getRenderedSpatial() != null){
+                            
+                }
+                        
+                if (thing instanceof InternetSprite){ //thing instanceof InternetSprite
+                    if (((InternetSprite) thing).isSupportSprite()){
+                        SpriteInfo spriteInfo = ((InternetSprite) thing).spriteInfo();
+                        spriteInfoToRender.add(spriteInfo);
+                        if (spriteInfo.getRenderState() == thing.getRenderState() 
+                                && spriteInfo.getConnectedSprite() != null ){
+                                    
+                        } else if (spriteInfo.getConnectedSprite() == null){
+                            spriteInfoToAttach.add(spriteInfo);
+                        } else if (thing.getRenderState() != spriteInfo.getRenderState()){
+                            spriteInfoToDetach.add(spriteInfo);
+                            spriteInfoToAttach.add(spriteInfo);
+                            spriteInfo.setRenderState(thing.getRenderState());
+                        }
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Get instance of template for visible shared thing. Instance is
+         * reused until state of thing changes
+         */
+        private Spatial sharedInstance(Thing thing){
+            visibleShared.add(thing.getID());
+            Spatial instance = sharedSpatials.get(thing.getID());
+            Integer renderState = sharedRenderStates.get(thing.getID());
+            if (instance == null || renderState == null 
+                    || renderState != thing.getState()){
+                instance = thingTemplates.instantiate(
+                        thing.getClassID(), thing.getType(), thing.getLocation());
+                if (instance == null){
+                    return null;
+                }
+                sharedSpatials.put(thing.getID(), instance);
+                sharedRenderStates.put(thing.getID(), thing.getState());
+            }
+            return instance;
+        }
 
     };
     
@@ -474,6 +632,9 @@ public class InternetOfThings implements Savable{
         
         private void generate(Command command){
             GenerateOptions generateOptions = (GenerateOptions)command.getArguments()[0];
+            // Grass(1) and trees(2) look the same, render them from templates
+            thingTemplates.share(1);
+            thingTemplates.share(2);
             Node temp = Thomland.thomClient.getRootNode().clone(true);
             SkyRay skyRay = new SkyRay(
                     generateOptions.getWidth(),
@@ -565,5 +726,14 @@ public class InternetOfThings implements Savable{
     public void setAssetManager(AssetManager assetManager) {
         this.assetManager = assetManager;
     }
+
+    /**
+     * Templates of shared things. Share class before its things are added
+     * to keep them compressed and render them from templates
+     * @return thing templates
+     */
+    public ThingTemplates getThingTemplates() {
+        return thingTemplates;
+    }
     
 }
@@ -45,6 +45,11 @@ public interface Thing extends Serializable{
      */
     public int getRenderState();
     
+    /**
+     * Things of shared class(see ThingTemplates) are kept compressed, so
+     * spatial of them is null
+     * @return spatial
+     */
     public Spatial getSpatial();
     
     public Spatial getRenderedSpatial();
@@ -0,0 +1,444 @@
+
+package internetofthings;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.mapdb.HTreeMap;
+
+/**
+ * Thing chunks split world into fixed-size squares(by x and z). Things of
+ * loaded chunk live in things map and attached to the world, things of
+ * unloaded chunk are compressed and stored on disk. Unloaded chunk is written
+ * as 1 block, things added to unloaded chunk are appended as separate
+ * segments of this chunk, and all segments are read at once when chunk is
+ * loaded. Things could move(players, npc), so they are moved to their
+ * current chunk on every paging. Things of shared class are always
+ * compressed and not attached to the world, they are rendered from
+ * ThingTemplates.
+ *
+ * Every method except getters should be called only from 1 thread(it is the
+ * only writer of things map and world node). Things map, world node and sets
+ * of things of loaded chunks are changed only inside lock of this object, so
+ * other threads which read loaded things should synchronize on it. Pending
+ * and stored chunks are used only by that 1 thread
+ * @author Anton Starastsin
+ */
+public class ThingChunks {
+    /**
+     * Things added to unloaded chunk are collected and written to disk by
+     * segments of this size, not one by one
+     */
+    private static final int PENDING_BLOCK_SIZE = 256;
+
+    private float chunkSize;
+    private HTreeMap<Long, Thing> things;
+    private HTreeMap<long[], ArrayList<Thing>> storedChunks;
+    private Node world;
+    private ThingTemplates thingTemplates;
+    private ConcurrentHashMap<Long, HashSet<Long>> loadedChunks;
+    /**
+     * Count of stored segments of every unloaded chunk. Kept in memory to not
+     * touch disk on every add
+     */
+    private HashMap<Long, Integer> storedSegments;
+    private HashMap<Long, ArrayList<Thing>> pendingChunks;
+    /**
+     * Null until first paging, every chunk is near then
+     */
+    private ArrayList<Vector3f> viewers;
+    private float loadDistance;
+
+    /**
+     * @param chunkSize length of chunk side in world units
+     * @param things map of loaded things
+     * @param storedChunks segments of unloaded chunks by {chunk, segment},
+     * better to be on disk
+     * @param world node which loaded things are attached to
+     * @param thingTemplates templates of shared things
+     */
+    public ThingChunks(float chunkSize, HTreeMap<Long, Thing> things,
+            HTreeMap<long[], ArrayList<Thing>> storedChunks, Node world,
+            ThingTemplates thingTemplates){
+        this.chunkSize = chunkSize;
+        this.things = things;
+        this.storedChunks = storedChunks;
+        this.world = world;
+        this.thingTemplates = thingTemplates;
+        loadedChunks = new ConcurrentHashMap<>();
+        storedSegments = new HashMap<>();
+        for (long[] segment : storedChunks.keySet()){
+            storedSegments.merge(segment[0], (int) segment[1] + 1, Math::max);
+        }
+        pendingChunks = new HashMap<>();
+    }
+
+    /**
+     * Set viewers of last paging. Things added to chunk farther than
+     * loadDistance from every viewer are not kept in memory. Until viewers
+     * are set every chunk is near, so things are kept in memory as without
+     * paging
+     * @param viewers locations of viewers
+     * @param loadDistance distance from viewer to center of loaded chunk
+     */
+    public void setViewers(Collection<Vector3f> viewers, float loadDistance){
+        this.viewers = new ArrayList<>(viewers);
+        this.loadDistance = loadDistance;
+    }
+
+    /**
+     * Add thing to its chunk. If chunk is loaded or is new and near viewer,
+     * thing is recreated(if it was compressed), put to things map and
+     * attached. Otherwise thing is compressed and stored. Thing of shared
+     * class gives its spatial to template if there is no one and stays
+     * compressed
+     * @param thing added thing
+     */
+    public void add(Thing thing){
+        boolean shared = isShared(thing);
+        if (shared){
+            shareSpatial(thing);
+        }
+        long chunk = chunkOf(thing.getLocation());
+        HashSet<Long> ids = loadedChunks.get(chunk);
+        if (ids == null && (isStored(chunk) || !isNearViewer(chunk))){
+            addPending(chunk, thing);
+            return;
+        }
+        if (!shared && thing.isCompressed()){
+            thing.recreate();
+        }
+        synchronized (this){
+            things.put(thing.getID(), thing);
+            if (!shared){
+                world.attachChild(thing.getSpatial());
+            }
+            if (ids == null){
+                ids = new HashSet<>();
+                loadedChunks.put(chunk, ids);
+            }
+            ids.add(thing.getID());
+        }
+    }
+
+    /**
+     * Move things of loaded chunks which changed location to their current
+     * chunk. If new chunk is unloaded or far from viewers, thing is
+     * compressed and stored there
+     * @return count of moved things
+     */
+    public int rebucket(){
+        ArrayList<Thing> moved = new ArrayList<>();
+        synchronized (this){
+            for (Map.Entry<Long, HashSet<Long>> entry : loadedChunks.entrySet()){
+                Iterator<Long> iterator = entry.getValue().iterator();
+                while (iterator.hasNext()){
+                    Thing thing = things.get(iterator.next());
+                    if (thing == null){
+                        iterator.remove();
+                    } else if (chunkOf(thing.getLocation()) != entry.getKey()){
+                        iterator.remove();
+                        things.remove(thing.getID());
+                        Spatial spatial = thing.getSpatial();
+                        if (spatial != null){
+                            spatial.removeFromParent();
+                        }
+                        moved.add(thing);
+                    }
+                }
+            }
+        }
+        for (Thing thing : moved){
+            add(thing);
+        }
+        return moved.size();
+    }
+
+    /**
+     * Unload chunk: compress its things and store them as 1 segment. Things
+     * are removed from memory only after segment is stored, if storing fails
+     * they are recreated and chunk stays loaded
+     * @param chunk key of chunk
+     * @return count of unloaded things
+     */
+    public int unload(long chunk){
+        HashSet<Long> ids = loadedChunks.get(chunk);
+        if (ids == null){
+            return 0;
+        }
+        ArrayList<Thing> block = new ArrayList<>(ids.size());
+        synchronized (this){
+            if (ids.isEmpty()){
+                loadedChunks.remove(chunk);
+                return 0;
+            }
+            for (Long id : ids){
+                Thing thing = things.get(id);
+                if (thing == null){
+                    continue;
+                }
+                Spatial spatial = thing.getSpatial();
+                if (spatial != null){
+                    spatial.removeFromParent();
+                }
+                if (thing.getRenderedSpatial() != null){
+                    thing.destroyRenderedSpatial();
+                }
+                if (!thing.isCompressed()){
+                    thing.compress();
+                }
+                block.add(thing);
+            }
+        }
+        int segment = storedSegments.getOrDefault(chunk, 0);
+        try {
+            storedChunks.put(segmentKey(chunk, segment), block);
+        } catch (Exception ex){
+            System.err.println("[THING CHUNKS] Unable to store chunk " + chunk + ": " + ex);
+            synchronized (this){
+                for (Thing thing : block){
+                    if (!isShared(thing)){
+                        thing.recreate();
+                        world.attachChild(thing.getSpatial());
+                    }
+                }
+            }
+            return 0;
+        }
+        storedSegments.put(chunk, segment + 1);
+        synchronized (this){
+            for (Long id : ids){
+                things.remove(id);
+            }
+            loadedChunks.remove(chunk);
+        }
+        return block.size();
+    }
+
+    /**
+     * Load chunk: read all its segments and pending things, recreate things,
+     * put them to things map and attach. Segments and pending things are
+     * removed only after chunk is loaded, if recreating fails they stay
+     * @param chunk key of chunk
+     * @return count of loaded things
+     */
+    public int load(long chunk){
+        if (loadedChunks.containsKey(chunk)){
+            return 0;
+        }
+        int segments = storedSegments.getOrDefault(chunk, 0);
+        ArrayList<Thing> block = new ArrayList<>();
+        for (int segment = 0; segment < segments; segment++){
+            ArrayList<Thing> stored = storedChunks.get(segmentKey(chunk, segment));
+            if (stored != null){
+                block.addAll(stored);
+            }
+        }
+        ArrayList<Thing> pending = pendingChunks.get(chunk);
+        if (pending != null){
+            block.addAll(pending);
+        }
+        if (block.isEmpty()){
+            return 0;
+        }
+        try {
+            for (Thing thing : block){
+                if (!isShared(thing) && thing.isCompressed()){
+                    thing.recreate();
+                }
+            }
+        } catch (Exception ex){
+            System.err.println("[THING CHUNKS] Unable to load chunk " + chunk + ": " + ex);
+            for (Thing thing : block){
+                if (!thing.isCompressed()){
+                    thing.compress();
+                }
+            }
+            return 0;
+        }
+        synchronized (this){
+            HashSet<Long> ids = new HashSet<>();
+            for (Thing thing : block){
+                things.put(thing.getID(), thing);
+                if (!isShared(thing)){
+                    world.attachChild(thing.getSpatial());
+                }
+                ids.add(thing.getID());
+            }
+            loadedChunks.put(chunk, ids);
+        }
+        pendingChunks.remove(chunk);
+        for (int segment = 0; segment < segments; segment++){
+            storedChunks.remove(segmentKey(chunk, segment));
+        }
+        storedSegments.remove(chunk);
+        return block.size();
+    }
+
+    /**
+     * Write every pending thing to disk, so unloaded chunks do not hold
+     * memory between pagings
+     */
+    public void flushPending(){
+        for (Long chunk : new ArrayList<>(pendingChunks.keySet())){
+            flushPending(chunk);
+        }
+    }
+
+    private void addPending(long chunk, Thing thing){
+        if (!thing.isCompressed()){
+            if (thing.getRenderedSpatial() != null){
+                thing.destroyRenderedSpatial();
+            }
+            thing.compress();
+        }
+        ArrayList<Thing> pending = pendingChunks.get(chunk);
+        if (pending == null){
+            pending = new ArrayList<>();
+            pendingChunks.put(chunk, pending);
+        }
+        pending.add(thing);
+        if (pending.size() >= PENDING_BLOCK_SIZE){
+            flushPending(chunk);
+        }
+    }
+
+    /**
+     * Write pending things of chunk as new segment, stored segments are not
+     * read. If writing fails things stay pending
+     */
+    private void flushPending(long chunk){
+        ArrayList<Thing> pending = pendingChunks.get(chunk);
+        if (pending == null){
+            return;
+        }
+        int segment = storedSegments.getOrDefault(chunk, 0);
+        try {
+            storedChunks.put(segmentKey(chunk, segment), pending);
+            storedSegments.put(chunk, segment + 1);
+            pendingChunks.remove(chunk);
+        } catch (Exception ex){
+            System.err.println("[THING CHUNKS] Unable to store pending things of chunk "
+                    + chunk + ": " + ex);
+        }
+    }
+
+    private boolean isShared(Thing thing){
+        return thingTemplates.isShared(thing.getClassID());
+    }
+
+    /**
+     * Register spatial of thing as template if there is no template of its
+     * classID and type yet, then compress thing
+     */
+    private void shareSpatial(Thing thing){
+        if (!thingTemplates.contains(thing.getClassID(), thing.getType())){
+            if (thing.isCompressed()){
+                thing.recreate();
+            }
+            thingTemplates.register(thing.getClassID(), thing.getType(),
+                    thing.getSpatial().clone(false));
+        }
+        if (!thing.isCompressed()){
+            if (thing.getRenderedSpatial() != null){
+                thing.destroyRenderedSpatial();
+            }
+            thing.compress();
+        }
+    }
+
+    private boolean isNearViewer(long chunk){
+        if (viewers == null){
+            return true;
+        }
+        for (Vector3f viewer : viewers){
+            if (distanceToChunk(viewer, chunk) <= loadDistance){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Only for thread which pages chunks
+     * @return true if chunk has things stored on disk or waiting to be stored
+     */
+    boolean isStored(long chunk){
+        return storedSegments.containsKey(chunk) || pendingChunks.containsKey(chunk);
+    }
+
+    public boolean isLoaded(long chunk){
+        return loadedChunks.containsKey(chunk);
+    }
+
+    /**
+     * @return keys of loaded chunks. Copy, so it could be modified
+     */
+    public Set<Long> getLoadedChunks(){
+        return new HashSet<>(loadedChunks.keySet());
+    }
+
+    /**
+     * Get things of loaded chunk. Caller should hold lock of this object
+     * while it uses things
+     * @param chunk key of chunk
+     * @param result collection things are added to
+     */
+    public void getThings(long chunk, Collection<Thing> result){
+        HashSet<Long> ids = loadedChunks.get(chunk);
+        if (ids == null){
+            return;
+        }
+        for (Long id : ids){
+            Thing thing = things.get(id);
+            if (thing != null){
+                result.add(thing);
+            }
+        }
+    }
+
+    public float getChunkSize() {
+        return chunkSize;
+    }
+
+    public long chunkOf(Vector3f location){
+        return chunkOf(location.x, location.z);
+    }
+
+    public long chunkOf(float x, float z){
+        return key((int) Math.floor(x / chunkSize), (int) Math.floor(z / chunkSize));
+    }
+
+    /**
+     * Distance by x and z from location to center of chunk
+     */
+    public float distanceToChunk(Vector3f location, long chunk){
+        float dx = (chunkX(chunk) + 0.5f) * chunkSize - location.x;
+        float dz = (chunkZ(chunk) + 0.5f) * chunkSize - location.z;
+        return (float) Math.sqrt(dx * dx + dz * dz);
+    }
+
+    public static long key(int chunkX, int chunkZ){
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public static int chunkX(long chunk){
+        return (int) (chunk >> 32);
+    }
+
+    public static int chunkZ(long chunk){
+        return (int) chunk;
+    }
+
+    private static long[] segmentKey(long chunk, int segment){
+        return new long[]{chunk, segment};
+    }
+}
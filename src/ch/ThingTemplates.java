@@ -0,0 +1,84 @@
+
+package internetofthings;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Spatial;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thing templates is the registry of shared spatials of Internet of Things.
+ * Things of shared class(grass, trees) look the same for the same classID
+ * and type, so spatial of the first added thing becomes template, and every
+ * other thing of this class is kept compressed: only location and data.
+ * Spatial is instantiated from template only while thing is rendered, so
+ * count of spatials depends on what is visible, not on size of the world
+ * @author Anton Starastsin
+ */
+public class ThingTemplates {
+    private ConcurrentHashMap<Long, Spatial> templates;
+    private Set<Integer> sharedClasses;
+
+    public ThingTemplates(){
+        templates = new ConcurrentHashMap<>();
+        sharedClasses = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Make things of class shared. Do not share classes which things have own
+     * look or state(players, npc)
+     * @param classID of things
+     */
+    public void share(int classID){
+        sharedClasses.add(classID);
+    }
+
+    public boolean isShared(int classID){
+        return sharedClasses.contains(classID);
+    }
+
+    /**
+     * Register template for things of classID and type if it is not
+     * registered yet
+     * @param classID of thing
+     * @param type of thing
+     * @param template spatial which meshes and materials will be shared. It
+     * should not be attached anywhere
+     */
+    public void register(int classID, byte type, Spatial template){
+        templates.putIfAbsent(key(classID, type), template);
+    }
+
+    public boolean contains(int classID, byte type){
+        return templates.containsKey(key(classID, type));
+    }
+
+    /**
+     * Create instance of template placed at location. Instance shares meshes
+     * and materials with template
+     * @param classID of thing
+     * @param type of thing
+     * @param location of thing
+     * @return instance or null if template is not registered
+     */
+    public Spatial instantiate(int classID, byte type, Vector3f location){
+        Spatial template = templates.get(key(classID, type));
+        if (template == null){
+            return null;
+        }
+        Spatial instance = template.clone(false);
+        instance.setLocalTranslation(location);
+        return instance;
+    }
+
+    public void clear(){
+        templates.clear();
+    }
+
+    /**
+     * Type is byte, so classID is shifted to keep every pair unique
+     */
+    private static long key(int classID, byte type){
+        return ((long) classID << 8) | (type & 0xFF);
+    }
+}